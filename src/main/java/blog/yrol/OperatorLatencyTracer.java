@@ -0,0 +1,358 @@
+package blog.yrol;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.Fuseable;
+import reactor.core.Scannable;
+import reactor.core.publisher.Hooks;
+import reactor.core.publisher.Operators;
+import reactor.util.context.Context;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Per-operator latency tracing for Flux and Mono pipelines
+ * Every operator assembled after install() is wrapped, including the ones created inside transform() (Ex: namesFluxTransform)
+ * since transform() applies its function at assembly time.
+ *
+ * Each stage is the edge between an operator and the operator consuming its output. Ex: "map -> filter [2/3]"
+ * - 2 is the number of operators upstream of the edge, 3 the number of traced stages between it and the final subscriber.
+ *   This separates repeated operator pairs within a chain, and stays the same every time a pipeline is assembled
+ *   (Ex: flatMap inner sources), so the number of stages is bounded by the pipelines in the code rather than by the traffic.
+ * - Pipelines of the same shape share their stages. A .name("...") on or upstream of the operator keeps them apart,
+ *   Ex: "map -> filter [names 2/3]"
+ *
+ * For every onNext crossing a stage the following is recorded:
+ * - self time: time the consumer spent on the element, excluding the stages further downstream (including their tracing overhead)
+ * - queue occupancy: number of elements buffered by the upstream operator (only for operators with queues, Ex: flatMap, concatMap)
+ * - a JFR event (blog.yrol.OperatorStage), only while a flight recording has it enabled
+ *
+ * Tracing disables fusion between operators, so every element is passed through onNext.
+ * Self time only covers the synchronous part of a stage. Work handed off to another thread (Ex: delayElements)
+ * is measured from the point it is picked up again.
+ * **/
+public final class OperatorLatencyTracer {
+
+    private static final String HOOK_KEY = "blog.yrol.OperatorLatencyTracer";
+
+    private static final Map<String, StageMetrics> STAGES = new ConcurrentHashMap<>();
+
+    private static final EventType STAGE_EVENT_TYPE = EventType.getEventType(StageEvent.class);
+
+    /**
+     * Nested onNext calls on the same thread, used for subtracting the downstream time from a stage
+     * **/
+    private static final ThreadLocal<Frames> FRAMES = ThreadLocal.withInitial(Frames::new);
+
+    private OperatorLatencyTracer() {
+    }
+
+    /**
+     * Start wrapping operators. Only pipelines assembled after this call are traced.
+     * **/
+    public static void install() {
+        Hooks.onEachOperator(HOOK_KEY, Operators.lift((publisher, actual) -> new StageSubscriber<>(stageFor(publisher, actual), actual)));
+    }
+
+    /**
+     * Stop wrapping operators. Already recorded stages are kept until reset() is called.
+     * **/
+    public static void uninstall() {
+        Hooks.resetOnEachOperator(HOOK_KEY);
+    }
+
+    public static void reset() {
+        STAGES.clear();
+    }
+
+    public static Set<String> stages() {
+        return new TreeSet<>(STAGES.keySet());
+    }
+
+    /**
+     * Copy of the self time histogram (nanoseconds) of the given stage, or null if the stage hasn't been seen
+     * **/
+    public static Histogram latencyHistogram(String stage) {
+        var metrics = STAGES.get(stage);
+        return metrics == null ? null : metrics.latency.copy();
+    }
+
+    /**
+     * Copy of the queue occupancy histogram of the given stage, or null if the stage hasn't been seen
+     * **/
+    public static Histogram queueHistogram(String stage) {
+        var metrics = STAGES.get(stage);
+        return metrics == null ? null : metrics.queue.copy();
+    }
+
+    /**
+     * Per-stage breakdown, slowest stage (by p99 self time) first
+     * Histograms are copied once up front, so the ordering and the printed values come from the same snapshot.
+     * **/
+    public static String dump() {
+        var snapshots = STAGES.entrySet().stream()
+                .map(entry -> new StageSnapshot(entry.getKey(), entry.getValue().latency.copy(), entry.getValue().queue.copy()))
+                .sorted(Comparator.comparingLong((StageSnapshot snapshot) -> snapshot.latencyP99).reversed())
+                .collect(Collectors.toList());
+
+        var builder = new StringBuilder(String.format("%-50s %10s %12s %12s %12s %10s %10s%n",
+                "stage", "count", "p50(us)", "p99(us)", "max(us)", "queue p99", "queue max"));
+
+        snapshots.forEach(snapshot -> builder.append(String.format("%-50s %10d %12.1f %12.1f %12.1f %10d %10d%n",
+                snapshot.name,
+                snapshot.latency.getTotalCount(),
+                toMicros(snapshot.latency.getValueAtPercentile(50)),
+                toMicros(snapshot.latencyP99),
+                toMicros(snapshot.latency.getMaxValue()),
+                snapshot.queue.getValueAtPercentile(99),
+                snapshot.queue.getMaxValue())));
+
+        return builder.toString();
+    }
+
+    private static double toMicros(long nanos) {
+        return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+    }
+
+    /**
+     * Resolved once per subscription, not per element
+     * **/
+    private static StageMetrics stageFor(Scannable publisher, CoreSubscriber<?> actual) {
+        var consumer = Scannable.from(actual);
+        var consumerName = consumer.isScanAvailable() ? consumer.stepName() : actual.getClass().getSimpleName();
+        var upstream = publisher.parents().collect(Collectors.toList());
+        var stagesBelow = Stream.concat(Stream.of(consumer), consumer.actuals())
+                .filter(StageSubscriber.class::isInstance)
+                .count();
+
+        var position = upstream.size() + "/" + stagesBelow;
+        var name = nameOf(publisher, upstream);
+        var stage = publisher.stepName() + " -> " + consumerName + " [" + (name == null ? position : name + " " + position) + "]";
+        return STAGES.computeIfAbsent(stage, StageMetrics::new);
+    }
+
+    /**
+     * User defined name (.name()) on the publisher or upstream of it, if any
+     * **/
+    private static String nameOf(Scannable publisher, List<? extends Scannable> upstream) {
+        return Stream.concat(Stream.of(publisher), upstream.stream())
+                .map(scannable -> scannable.scan(Scannable.Attr.NAME))
+                .filter(Objects::nonNull)
+                .findFirst()
+                .orElse(null);
+    }
+
+    private static final class StageMetrics {
+        private final String name;
+        private final Histogram latency = new ConcurrentHistogram(3);
+        private final Histogram queue = new ConcurrentHistogram(3);
+
+        private StageMetrics(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final class StageSnapshot {
+        private final String name;
+        private final Histogram latency;
+        private final Histogram queue;
+        private final long latencyP99;
+
+        private StageSnapshot(String name, Histogram latency, Histogram queue) {
+            this.name = name;
+            this.latency = latency;
+            this.queue = queue;
+            this.latencyP99 = latency.getValueAtPercentile(99);
+        }
+    }
+
+    /**
+     * Reusable per-thread stack of the time spent in nested stages, avoids allocating per onNext
+     * **/
+    private static final class Frames {
+        private long[] childNanos = new long[16];
+        private int depth;
+
+        private int push() {
+            if (depth == childNanos.length) {
+                childNanos = Arrays.copyOf(childNanos, depth * 2);
+            }
+            childNanos[depth] = 0;
+            return depth++;
+        }
+
+        /**
+         * Charges the total time of the popped stage (work and tracing overhead) to its parent
+         * **/
+        private void pop(long totalNanos) {
+            depth--;
+            if (depth > 0) {
+                childNanos[depth - 1] += totalNanos;
+            }
+        }
+    }
+
+    /**
+     * Sits between an operator and its downstream subscriber, timing each onNext passed through
+     * Passes itself downstream as a QueueSubscription that refuses fusion, so the consumer can't fuse with the upstream
+     * operator and skip onNext, while fuseable consumers still get the QueueSubscription they expect.
+     * **/
+    private static final class StageSubscriber<T> implements CoreSubscriber<T>, Fuseable.QueueSubscription<T>, Scannable {
+
+        private final StageMetrics stage;
+        private final CoreSubscriber<? super T> actual;
+        private Subscription upstream;
+        private Scannable bufferSource; // null when the upstream operator doesn't report a queue
+
+        private StageSubscriber(StageMetrics stage, CoreSubscriber<? super T> actual) {
+            this.stage = stage;
+            this.actual = actual;
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            this.upstream = s;
+            var scannable = Scannable.from(s);
+            if (scannable.scan(Attr.BUFFERED) != null) {
+                this.bufferSource = scannable;
+            }
+            actual.onSubscribe(this);
+        }
+
+        @Override
+        public void onNext(T t) {
+            long enter = System.nanoTime();
+            var frames = FRAMES.get();
+            int frame = frames.push();
+            Integer buffered = null;
+            StageEvent event = null;
+            long start = enter;
+
+            // everything after push() is inside the try, so the frame is always popped
+            try {
+                buffered = bufferSource == null ? null : bufferSource.scan(Attr.BUFFERED);
+                if (STAGE_EVENT_TYPE.isEnabled()) {
+                    event = new StageEvent();
+                    event.begin();
+                }
+
+                start = System.nanoTime();
+                actual.onNext(t);
+            } finally {
+                long self = Math.max(0, System.nanoTime() - start - frames.childNanos[frame]);
+                stage.latency.recordValue(self);
+                if (buffered != null && buffered >= 0) {
+                    stage.queue.recordValue(buffered);
+                }
+
+                if (event != null) {
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.stage = stage.name;
+                        event.selfTime = self;
+                        event.buffered = buffered == null ? -1 : buffered;
+                        event.commit();
+                    }
+                }
+
+                // taken after the bookkeeping above, so the parent stage isn't charged for it
+                frames.pop(System.nanoTime() - enter);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            actual.onError(t);
+        }
+
+        @Override
+        public void onComplete() {
+            actual.onComplete();
+        }
+
+        @Override
+        public void request(long n) {
+            upstream.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            upstream.cancel();
+        }
+
+        @Override
+        public int requestFusion(int requestedMode) {
+            return Fuseable.NONE;
+        }
+
+        @Override
+        public T poll() {
+            return null;
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            // never fused, nothing to clear
+        }
+
+        @Override
+        public Context currentContext() {
+            return actual.currentContext();
+        }
+
+        @Override
+        public Object scanUnsafe(Attr key) {
+            if (key == Attr.PARENT) return upstream;
+            if (key == Attr.ACTUAL) return actual;
+            if (key == Attr.RUN_STYLE) return Attr.RunStyle.SYNC;
+            return null;
+        }
+    }
+
+    /**
+     * JFR event committed per onNext. Duration includes the downstream stages, selfTime doesn't.
+     * **/
+    @Name("blog.yrol.OperatorStage")
+    @Label("Reactor Operator Stage")
+    @Category("Reactor")
+    @Description("onNext passing through a traced operator stage")
+    static final class StageEvent extends Event {
+
+        @Label("Stage")
+        String stage;
+
+        @Label("Self Time (ns)")
+        long selfTime;
+
+        @Label("Buffered")
+        int buffered;
+    }
+}
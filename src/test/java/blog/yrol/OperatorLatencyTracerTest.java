@@ -0,0 +1,250 @@
+package blog.yrol;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Testing the per-operator tracing
+ * The tracer is installed through a global Reactor hook, hence it's removed after each test
+ * **/
+public class OperatorLatencyTracerTest {
+
+    ReactiveMonoFlux reactiveMonoFlux = new ReactiveMonoFlux();
+
+    @BeforeEach
+    void setUp() {
+        OperatorLatencyTracer.reset();
+        OperatorLatencyTracer.install();
+    }
+
+    @AfterEach
+    void tearDown() {
+        OperatorLatencyTracer.uninstall();
+        OperatorLatencyTracer.reset();
+    }
+
+    @Test
+    void testStages_whenCallingNamesFluxMultipleChaining_recordEachOperator() {
+        // Arrange
+        var namesFlux = reactiveMonoFlux.namesFluxMultipleChaining(3);
+
+        // Act
+        StepVerifier.create(namesFlux)
+                .expectNext("4-ALEX", "5-CHLOE")
+                .verifyComplete();
+
+        // Assert - all 3 names reach the filter, only 2 of them pass it
+        assertEquals(3, elementCount(edge -> edge.equals("map -> filter")), this::stageList);
+        assertEquals(2, elementCount(edge -> edge.equals("filter -> map")), this::stageList);
+    }
+
+    /**
+     * Operators created inside the transform() function are traced as well
+     * **/
+    @Test
+    void testStages_whenCallingNamesFluxTransform_recordOperatorsInsideTransform() {
+        // Arrange
+        var namesFlux = reactiveMonoFlux.namesFluxTransform(3);
+
+        // Act
+        StepVerifier.create(namesFlux)
+                .expectNext("A", "L", "E", "X", "C", "H", "L", "O", "E")
+                .verifyComplete();
+
+        // Assert - flatMap has queues, hence it reports its occupancy for every element it emits (values are checked further below)
+        assertEquals(3, elementCount(edge -> edge.equals("map -> filter")), this::stageList);
+        assertEquals(2, elementCount(edge -> edge.equals("filter -> flatMap")), this::stageList);
+        var flatMapStage = stage(edge -> edge.startsWith("flatMap -> "));
+        assertEquals(9, OperatorLatencyTracer.latencyHistogram(flatMapStage).getTotalCount());
+        assertEquals(9, OperatorLatencyTracer.queueHistogram(flatMapStage).getTotalCount());
+    }
+
+    /**
+     * flatMap inner sources would fuse with the flatMap and skip onNext if the tracer passed their subscription through
+     * **/
+    @Test
+    void testStages_whenCallingNamesFluxFlatmap_recordInnerSources() {
+        // Arrange
+        var namesFlux = reactiveMonoFlux.namesFluxFlatmap(3);
+
+        // Act
+        StepVerifier.create(namesFlux)
+                .expectNext("A", "L", "E", "X", "C", "H", "L", "O", "E")
+                .verifyComplete();
+
+        // Assert - "ALEX" and "CHLOE" are each split in their own inner pipeline, both of the same shape hence sharing a stage
+        Predicate<String> innerEdge = edge -> edge.contains(" -> flatMap") && !edge.startsWith("filter -> ");
+        assertEquals(1, stagesMatching(innerEdge).size(), this::stageList);
+        assertEquals(9, elementCount(innerEdge), this::stageList);
+    }
+
+    /**
+     * Inner elements keep arriving while the slow map holds the flatMap, hence they wait in the flatMap's queues
+     * **/
+    @Test
+    void testQueueOccupancy_whenFlatMapDownstreamIsSlow_recordBufferedElements() {
+        // Arrange
+        var namesFlux = Flux.fromIterable(List.of("Alex", "Chloe"))
+                .flatMap(name -> reactiveMonoFlux.splitString(name).delayElements(Duration.ofMillis(10)))
+                .map(this::slowUpperCase);
+
+        // Act
+        StepVerifier.create(namesFlux)
+                .expectNextCount(9)
+                .verifyComplete();
+
+        // Assert
+        var queue = OperatorLatencyTracer.queueHistogram(stage(edge -> edge.equals("flatMap -> map")));
+        assertEquals(9, queue.getTotalCount());
+        assertTrue(queue.getMaxValue() >= 1, this::stageList);
+    }
+
+    /**
+     * Assembling the same pipeline again reuses its stages instead of adding new ones
+     * **/
+    @Test
+    void testStages_whenAssemblingPipelineTwice_reuseStages() {
+        // Act
+        StepVerifier.create(reactiveMonoFlux.namesFluxFlatmap(3))
+                .expectNextCount(9)
+                .verifyComplete();
+        var stagesAfterFirstRun = OperatorLatencyTracer.stages();
+
+        StepVerifier.create(reactiveMonoFlux.namesFluxFlatmap(3))
+                .expectNextCount(9)
+                .verifyComplete();
+
+        // Assert
+        assertEquals(stagesAfterFirstRun, OperatorLatencyTracer.stages());
+        assertEquals(6, elementCount(edge -> edge.equals("map -> filter")), this::stageList);
+    }
+
+    /**
+     * concatMap would fuse with the filter and skip onNext if the tracer passed the filter's subscription through
+     * **/
+    @Test
+    void testStages_whenCallingNamesFluxFlatmapAsyncConcat_recordConcatMapStage() {
+        // Arrange
+        var namesFlux = reactiveMonoFlux.namesFluxFlatmapAsyncConcat(3);
+
+        // Act
+        StepVerifier.create(namesFlux)
+                .expectNext("A", "L", "E", "X", "C", "H", "L", "O", "E")
+                .verifyComplete();
+
+        // Assert
+        assertEquals(2, elementCount(edge -> edge.startsWith("filter -> concatMap")), this::stageList);
+    }
+
+    /**
+     * The slow map is charged to the stage feeding it, not to the stages upstream of it
+     * **/
+    @Test
+    void testSelfTime_whenMapIsSlow_chargeOnlyTheMapStage() {
+        // Arrange
+        var namesFlux = Flux.fromIterable(List.of("Alex", "Ben"))
+                .filter(s -> s.length() > 1)
+                .map(this::slowUpperCase);
+
+        // Act
+        StepVerifier.create(namesFlux)
+                .expectNext("ALEX", "BEN")
+                .verifyComplete();
+
+        // Assert
+        var slowStage = OperatorLatencyTracer.latencyHistogram(stage(edge -> edge.equals("filter -> map")));
+        var upstreamStage = OperatorLatencyTracer.latencyHistogram(stage(edge -> edge.endsWith(" -> filter")));
+        assertTrue(slowStage.getMinValue() >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(upstreamStage.getMaxValue() < TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    void testJfrEvents_whenRecording_commitStageEvents() throws Exception {
+        var file = Files.createTempFile("operator-stage", ".jfr");
+
+        try (var recording = new Recording()) {
+            recording.enable(OperatorLatencyTracer.StageEvent.class).withThreshold(Duration.ZERO);
+            recording.start();
+
+            StepVerifier.create(reactiveMonoFlux.namesFluxMap())
+                    .expectNext("ALEX", "BEN", "CHLOE")
+                    .verifyComplete();
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        var events = RecordingFile.readAllEvents(file).stream()
+                .filter(event -> event.getEventType().getName().equals("blog.yrol.OperatorStage"))
+                .collect(Collectors.toList());
+        Files.delete(file);
+
+        assertFalse(events.isEmpty());
+        assertTrue(events.stream().anyMatch(event -> event.getString("stage").startsWith("map -> ")));
+    }
+
+    @Test
+    void testStages_whenUninstalled_recordNothing() {
+        // Arrange
+        OperatorLatencyTracer.uninstall();
+        var namesFlux = reactiveMonoFlux.namesFluxMap();
+
+        // Act
+        StepVerifier.create(namesFlux)
+                .expectNext("ALEX", "BEN", "CHLOE")
+                .verifyComplete();
+
+        // Assert
+        assertTrue(OperatorLatencyTracer.stages().isEmpty());
+    }
+
+    private String slowUpperCase(String name) {
+        try {
+            Thread.sleep(50);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return name.toUpperCase();
+    }
+
+    /**
+     * Stage names are "upstream -> consumer [pipeline/position]", the following match on the "upstream -> consumer" part
+     * **/
+    private List<String> stagesMatching(Predicate<String> edge) {
+        return OperatorLatencyTracer.stages().stream()
+                .filter(stage -> edge.test(stage.substring(0, stage.lastIndexOf(" ["))))
+                .collect(Collectors.toList());
+    }
+
+    private String stage(Predicate<String> edge) {
+        var stages = stagesMatching(edge);
+        assertEquals(1, stages.size(), this::stageList);
+        return stages.get(0);
+    }
+
+    private long elementCount(Predicate<String> edge) {
+        return stagesMatching(edge).stream()
+                .mapToLong(stage -> OperatorLatencyTracer.latencyHistogram(stage).getTotalCount())
+                .sum();
+    }
+
+    private String stageList() {
+        return OperatorLatencyTracer.dump();
+    }
+}